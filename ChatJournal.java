@@ -0,0 +1,303 @@
+package tcp_server6;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Append-only chat journal split into segments (chat_<date>.txt).
+// A segment is rotated when it reaches a size or an age limit, whichever comes first.
+// Rotation only swaps the open file, so writers never wait for compression: closed segments
+// are compressed by a background thread and then retention limits are applied.
+//
+// Compressed segments (.txt.gz) are a series of independent gzip members of about BLOCK_SIZE
+// bytes each, so standard gzip tools can still read them. The .idx file next to it lists, per
+// block, "firstLine,compressedOffset", which lets readLines() start at any line by decompressing
+// a single block. The writer holds a lock on a sidecar <segment>.lock file, so segments still being
+// written (by this process or another one sharing the directory) are never compressed or deleted.
+// The lock is on a file nobody reads: POSIX drops a process's lock when it closes any descriptor
+// for the locked file, so locking the segment itself would not survive reading it back.
+public class ChatJournal {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final long MAINTENANCE_INTERVAL_MS = 60 * 1000;
+    private final File dir;
+    private final String prefix;
+    private final Pattern segmentPattern;
+    private final long maxSegmentBytes;
+    private final long maxSegmentAgeMs;
+    private final long maxTotalBytes;
+    private final long retentionMs;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "journal-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Guarded by this
+    private OutputStream out;
+    private File activeFile;
+    private FileChannel activeLock; // Held until rotation
+    private long activeBytes;
+    private long rotateAt;
+
+    public ChatJournal(File dir, String prefix, long maxSegmentBytes, long maxSegmentAgeMs,
+                       long maxTotalBytes, long retentionMs) throws IOException {
+        this.dir = dir;
+        this.prefix = prefix;
+        this.segmentPattern = Pattern.compile(Pattern.quote(prefix) + "\\d{4}-\\d{2}-\\d{2}_[\\d_-]+\\.txt(\\.gz)?");
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentAgeMs = maxSegmentAgeMs;
+        this.maxTotalBytes = maxTotalBytes;
+        this.retentionMs = retentionMs;
+        dir.mkdirs();
+        openSegment();
+        // Also picks up segments left uncompressed by a previous run
+        maintenance.scheduleWithFixedDelay(this::maintain, 0, MAINTENANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized File getActiveFile() {
+        return activeFile;
+    }
+
+    public synchronized void append(String line) {
+        byte[] bytes = (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        try {
+            if (activeBytes + bytes.length > maxSegmentBytes && activeBytes > 0
+                    || System.currentTimeMillis() >= rotateAt) {
+                rotate();
+            }
+            out.write(bytes);
+            out.flush();
+            activeBytes += bytes.length;
+        } catch (IOException e) {
+            System.err.println("Error writing journal: " + e.getMessage());
+        }
+    }
+
+    // Segment files owned by this journal, oldest first
+    public List<File> listSegments() {
+        File[] files = dir.listFiles((d, name) -> segmentPattern.matcher(name).matches());
+        List<File> segments = new ArrayList<>(files == null ? List.of() : Arrays.asList(files));
+        segments.sort(Comparator.comparingLong(File::lastModified).thenComparing(File::getName));
+        return segments;
+    }
+
+    // Reads up to maxLines lines starting at firstLine (0-based) from a plain or compressed segment
+    public static List<String> readLines(File segment, long firstLine, int maxLines) throws IOException {
+        List<String> lines = new ArrayList<>();
+        long lineNo = 0;
+        long[] start = segment.getName().endsWith(".gz")
+                ? seekBlock(new File(segment.getPath() + ".idx"), firstLine) : null;
+        // Every stream is opened inside the try, so a stale index offset cannot leak the file handle
+        try (InputStream file = new FileInputStream(segment)) {
+            InputStream raw = file;
+            if (start != null) {
+                file.skipNBytes(start[1]);
+                lineNo = start[0];
+                raw = new GZIPInputStream(file); // Continues across the following gzip members
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(raw, StandardCharsets.UTF_8))) {
+                String line;
+                while (lines.size() < maxLines && (line = reader.readLine()) != null) {
+                    if (lineNo++ >= firstLine) {
+                        lines.add(line);
+                    }
+                }
+            }
+        }
+        return lines;
+    }
+
+    // Returns {firstLine, compressedOffset} of the block holding the wanted line
+    private static long[] seekBlock(File index, long wantedLine) throws IOException {
+        long[] best = {0, 0};
+        if (!index.exists()) return best;
+        try (BufferedReader reader = Files.newBufferedReader(index.toPath(), StandardCharsets.UTF_8)) {
+            String entry;
+            while ((entry = reader.readLine()) != null) {
+                String[] parts = entry.split(",");
+                long blockLine = Long.parseLong(parts[0]);
+                if (blockLine > wantedLine) break;
+                best = new long[]{blockLine, Long.parseLong(parts[1])};
+            }
+        }
+        return best;
+    }
+
+    public synchronized void rotateIfDue() {
+        if (System.currentTimeMillis() >= rotateAt) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                System.err.println("Error rotating journal: " + e.getMessage());
+            }
+        }
+    }
+
+    // Caller holds the lock. Only swaps files; compression happens later in maintain().
+    private void rotate() throws IOException {
+        File previous = activeFile;
+        out.close();
+        activeLock.close(); // Releases the lock; the lock file is removed after compression
+        openSegment();
+        String header = "=== NEW SEGMENT STARTED: " + new Date() + " (previous: " + previous.getName() + ") ===";
+        byte[] bytes = (header + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        out.flush();
+        activeBytes += bytes.length;
+        System.out.println("Rotated to new backup file: " + activeFile.getPath());
+        maintenance.execute(this::maintain);
+    }
+
+    private void openSegment() throws IOException {
+        String base = prefix + dateFormat.format(new Date());
+        for (int i = 0; ; i++) {
+            File file = new File(dir, base + (i == 0 ? "" : "_" + i) + ".txt"); // Several rotations within one second
+            if (file.exists() || new File(file.getPath() + ".gz").exists()) continue;
+            FileChannel lock = FileChannel.open(lockFile(file).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (tryLock(lock) == null || file.exists()) {
+                lock.close(); // Another process picked the same name
+                continue;
+            }
+            activeFile = file;
+            activeLock = lock;
+            out = new BufferedOutputStream(new FileOutputStream(file, true));
+            break;
+        }
+        activeBytes = 0;
+        rotateAt = System.currentTimeMillis() + maxSegmentAgeMs;
+    }
+
+    // Background: time-based rotation, compression of cold segments, then retention
+    private void maintain() {
+        try {
+            rotateIfDue();
+            // List before reading the active file, so a segment opened in between is never included
+            List<File> segments = listSegments();
+            File active = getActiveFile();
+            for (File segment : segments) {
+                if (segment.getName().endsWith(".txt") && !segment.equals(active)) {
+                    compressIfIdle(segment);
+                }
+            }
+            applyRetention(active);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Journal maintenance failed: " + e.getMessage());
+        }
+    }
+
+    // Holds the segment's lock while compressing, so neither its writer nor another journal can touch it.
+    // Never called for this journal's active segment, whose lock file must stay untouched by this process.
+    private void compressIfIdle(File segment) throws IOException {
+        File lockFile = lockFile(segment);
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (tryLock(channel) == null) return;
+            if (segment.exists()) { // Otherwise already compressed by another process sharing the directory
+                compress(segment);
+            }
+        }
+        Files.deleteIfExists(lockFile.toPath()); // After closing, since Windows cannot delete open files
+    }
+
+    // Plain segments whose writer (or compressor) still holds the lock
+    private static boolean inUse(File segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(lockFile(segment).toPath(), StandardOpenOption.WRITE)) {
+            return tryLock(channel) == null;
+        } catch (NoSuchFileException e) {
+            return false; // Lock files are created before their segment, so this one was never locked
+        }
+    }
+
+    private static File lockFile(File segment) {
+        return new File(segment.getPath() + ".lock");
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null; // Locked by this process
+        }
+    }
+
+    private void compress(File segment) throws IOException {
+        File gz = new File(segment.getPath() + ".gz");
+        File index = new File(gz.getPath() + ".idx");
+        File gzTmp = new File(gz.getPath() + ".tmp");
+        File indexTmp = new File(index.getPath() + ".tmp");
+        try (BufferedReader reader = Files.newBufferedReader(segment.toPath(), StandardCharsets.UTF_8);
+             FileOutputStream gzOut = new FileOutputStream(gzTmp);
+             PrintWriter indexOut = new PrintWriter(Files.newBufferedWriter(indexTmp.toPath(), StandardCharsets.UTF_8))) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 1024);
+            long lineNo = 0;
+            long blockFirstLine = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                block.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                lineNo++;
+                if (block.size() >= BLOCK_SIZE) {
+                    indexOut.println(blockFirstLine + "," + gzOut.getChannel().position());
+                    writeBlock(block, gzOut);
+                    blockFirstLine = lineNo;
+                }
+            }
+            if (block.size() > 0) {
+                indexOut.println(blockFirstLine + "," + gzOut.getChannel().position());
+                writeBlock(block, gzOut);
+            }
+        }
+        // Publish atomically; readers see either the plain or the complete compressed segment
+        long lastModified = segment.lastModified();
+        long plainBytes = segment.length();
+        Files.move(indexTmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(gzTmp.toPath(), gz.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        gz.setLastModified(lastModified); // Keeps retention ordering by age
+        Files.delete(segment.toPath());
+        System.out.println("Compressed backup " + segment.getName() + " (" + plainBytes + " -> " + gz.length() + " bytes)");
+    }
+
+    // Each block is a self-contained gzip member
+    private static void writeBlock(ByteArrayOutputStream block, OutputStream target) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(new FilterOutputStream(target) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+            @Override
+            public void close() {
+                // Leave the segment file open for the next block
+            }
+        }, BLOCK_SIZE);
+        block.writeTo(gzip);
+        gzip.close();
+        block.reset();
+    }
+
+    // Deletes the oldest closed segments until both age and total size limits hold
+    private void applyRetention(File active) throws IOException {
+        List<File> segments = listSegments();
+        long total = 0;
+        for (File segment : segments) {
+            total += segment.length();
+        }
+        long cutoff = System.currentTimeMillis() - retentionMs;
+        for (File segment : segments) {
+            if (segment.equals(active) || segment.getName().endsWith(".txt") && inUse(segment)) continue;
+            if (total <= maxTotalBytes && segment.lastModified() >= cutoff) break;
+            total -= segment.length();
+            Files.deleteIfExists(segment.toPath());
+            Files.deleteIfExists(new File(segment.getPath() + ".idx").toPath());
+            Files.deleteIfExists(lockFile(segment).toPath());
+            System.out.println("Retention removed backup " + segment.getName());
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package tcp_server6;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Relays chat broadcasts between server instances so clients on different nodes share one chat.
+// Membership is static: every node listens on its cluster port and opens one outbound link per
+// configured peer (full mesh). Local messages are queued per link and written in batches with
+// a single flush; received relays are delivered locally only and never forwarded again.
+// Each message carries an ID (origin node + process incarnation + sequence); duplicates are
+// dropped, so a batch that is resent after a reconnect is harmless, while a restarted node
+// starts a fresh ID space that peers have not seen yet.
+//
+// Link protocol (one line each), over TLS when the server has a TLS context:
+//   CHALLENGE|<nonce>                 sent by the accepting node
+//   NODE|<nodeId>|<hmac>              reply, HMAC(cluster secret, cluster|nodeId|nonce)
+//   RELAY|<nodeId>:<incarnation>:<seq>|<sender>|<message>
+//   BATCH|<batchSeq>|<mac>            ends a batch of RELAY lines
+// The batch MAC uses a per-link key derived from the nonce and covers batchSeq plus every
+// RELAY line, so relays cannot be forged, replayed on another link, reordered or dropped.
+// The cluster secret is separate from chat.secret: clients hold that one, so it cannot vouch for a node.
+public class ClusterNode {
+
+    private static final int QUEUE_CAPACITY = 10_000;
+    private static final int MAX_BATCH = 256;
+    private static final int DEDUP_CAPACITY = 100_000;
+    private static final long MAX_BACKOFF_MS = 10_000;
+    // Unauthenticated inbound links: at most this many at once, each dropped if silent for too long
+    private static final int MAX_PENDING_LINKS = 16;
+    private static final int HELLO_TIMEOUT_MS = 10_000;
+
+    public interface Listener {
+        void onRemoteMessage(String originNode, String sender, String message);
+    }
+
+    private final String nodeId;
+    private final int clusterPort;
+    private final List<PeerLink> links = new ArrayList<>();
+    private final Listener listener;
+    private final SecretKeySpec clusterKey;
+    private final SSLContext sslContext; // Null for plaintext links
+    private final String incarnation = Long.toHexString(new SecureRandom().nextLong()); // New on every start
+    private final AtomicLong sequence = new AtomicLong();
+    private final Semaphore pendingLinks = new Semaphore(MAX_PENDING_LINKS);
+    private final Set<String> seenIds = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > DEDUP_CAPACITY;
+        }
+    });
+
+    public ClusterNode(String nodeId, int clusterPort, List<String> peers, byte[] clusterSecret,
+                       SSLContext sslContext, Listener listener) {
+        this.nodeId = nodeId;
+        this.clusterPort = clusterPort;
+        this.clusterKey = new SecretKeySpec(clusterSecret, "HmacSHA256");
+        this.sslContext = sslContext;
+        this.listener = listener;
+        for (String peer : peers) {
+            String[] hostPort = peer.trim().split(":");
+            links.add(new PeerLink(hostPort[0], Integer.parseInt(hostPort[1])));
+        }
+    }
+
+    // Parses a "host:port,host:port" list
+    public static List<String> parsePeers(String spec) {
+        List<String> peers = new ArrayList<>();
+        if (spec != null) {
+            for (String peer : spec.split(",")) {
+                if (!peer.isBlank()) peers.add(peer.trim());
+            }
+        }
+        return peers;
+    }
+
+    public void start() throws IOException {
+        ServerSocket serverSocket = sslContext != null
+                ? sslContext.getServerSocketFactory().createServerSocket(clusterPort)
+                : new ServerSocket(clusterPort);
+        startDaemon("cluster-accept", () -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    if (!pendingLinks.tryAcquire()) { // Released by receive() once the hello is done
+                        System.err.println("Rejected cluster link from " + socket.getInetAddress() + ": too many pending hellos");
+                        socket.close();
+                        continue;
+                    }
+                    startDaemon("cluster-in-" + socket.getPort(), () -> receive(socket));
+                } catch (IOException e) {
+                    System.err.println("Cluster accept failed: " + e.getMessage());
+                }
+            }
+        });
+        for (PeerLink link : links) {
+            startDaemon("cluster-out-" + link.host + ":" + link.port, link::run);
+        }
+        System.out.println("Cluster node " + nodeId + " on port " + clusterPort + ", peers: " + links.size()
+                + (sslContext != null ? " (TLS)" : ""));
+    }
+
+    // Queue a locally received message for every peer; never blocks the client thread
+    public void publish(String sender, String message) {
+        String line = "RELAY|" + nodeId + ":" + incarnation + ":" + sequence.incrementAndGet() + "|" + sender + "|" + message;
+        for (PeerLink link : links) {
+            if (!link.queue.offer(line) && link.dropped.getAndIncrement() % 1000 == 0) {
+                System.err.println("Cluster link to " + link.host + ":" + link.port + " is backlogged, dropping relays");
+            }
+        }
+    }
+
+    private void receive(Socket socket) {
+        String peerId = "?";
+        boolean authenticated = false;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            socket.setSoTimeout(HELLO_TIMEOUT_MS); // Also bounds the TLS handshake
+            String nonce = TCP_server6.newNonce();
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write("CHALLENGE|" + nonce + "\n");
+            out.flush();
+            String hello = in.readLine();
+            String[] helloParts = hello == null ? new String[0] : hello.split("\\|", 3);
+            if (helloParts.length != 3 || !helloParts[0].equals("NODE")
+                    || !TCP_server6.tagsMatch(TCP_server6.hmac(clusterKey, "cluster|" + helloParts[1] + "|" + nonce), helloParts[2])) {
+                System.err.println("Rejected cluster link from " + socket.getInetAddress() + ": bad hello");
+                return;
+            }
+            peerId = helloParts[1];
+            socket.setSoTimeout(0); // Authenticated peers may stay quiet indefinitely
+            pendingLinks.release();
+            authenticated = true;
+            SecretKeySpec linkKey = linkKey(peerId, nonce);
+            System.out.println("Cluster link up from " + peerId);
+            List<String> pending = new ArrayList<>(MAX_BATCH);
+            long batchSeq = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("RELAY|") && pending.size() < MAX_BATCH) {
+                    pending.add(line);
+                    continue;
+                }
+                String[] trailer = line.split("\\|", 3);
+                if (trailer.length != 3 || !trailer[0].equals("BATCH") || !trailer[1].equals(Long.toString(batchSeq))
+                        || !TCP_server6.tagsMatch(TCP_server6.toHex(batchMac(linkKey, batchSeq, pending)), trailer[2])) {
+                    System.err.println("Cluster batch from " + peerId + " failed verification, closing link");
+                    return;
+                }
+                for (String relay : pending) {
+                    String[] parts = relay.split("\\|", 4);
+                    if (parts.length == 4 && markSeen(parts[1])) {
+                        listener.onRemoteMessage(peerId, parts[2], parts[3]);
+                    }
+                }
+                pending.clear();
+                batchSeq++;
+            }
+        } catch (IOException e) {
+            System.err.println("Cluster link from " + peerId + " failed: " + e.getMessage());
+        } finally {
+            if (!authenticated) {
+                pendingLinks.release();
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        System.out.println("Cluster link down from " + peerId);
+    }
+
+    private SecretKeySpec linkKey(String connectingNode, String nonce) {
+        return TCP_server6.deriveKey(clusterKey, "cluster-link|" + connectingNode + "|" + nonce);
+    }
+
+    // Each link thread only ever uses its own link key, so its thread-local Mac is keyed once
+    private static byte[] batchMac(SecretKeySpec linkKey, long batchSeq, List<String> lines) {
+        Mac mac = TCP_server6.macFor(linkKey);
+        mac.update((batchSeq + "\n").getBytes(StandardCharsets.UTF_8));
+        for (String line : lines) {
+            mac.update(line.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) '\n');
+        }
+        return mac.doFinal();
+    }
+
+    private boolean markSeen(String messageId) {
+        synchronized (seenIds) {
+            return seenIds.add(messageId);
+        }
+    }
+
+    private static void startDaemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Outbound link to one peer: reconnects with backoff and resends an unfinished batch
+    private class PeerLink {
+        private final String host;
+        private final int port;
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        private final AtomicLong dropped = new AtomicLong();
+
+        PeerLink(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        private Socket openSocket() throws IOException {
+            if (sslContext == null) {
+                return new Socket(host, port);
+            }
+            SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(host, port);
+            socket.startHandshake();
+            return socket;
+        }
+
+        void run() {
+            List<String> batch = new ArrayList<>(MAX_BATCH);
+            long backoff = 500;
+            while (true) {
+                try (Socket socket = openSocket()) {
+                    socket.setTcpNoDelay(true);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024);
+                    String challenge = in.readLine();
+                    if (challenge == null || !challenge.startsWith("CHALLENGE|")) {
+                        throw new IOException("no challenge from peer");
+                    }
+                    String nonce = challenge.substring(10);
+                    out.write("NODE|" + nodeId + "|" + TCP_server6.hmac(clusterKey, "cluster|" + nodeId + "|" + nonce) + "\n");
+                    out.flush();
+                    SecretKeySpec linkKey = linkKey(nodeId, nonce);
+                    System.out.println("Cluster link up to " + host + ":" + port);
+                    backoff = 500;
+                    for (long batchSeq = 0; ; batchSeq++) {
+                        if (batch.isEmpty()) {
+                            batch.add(queue.take());
+                            queue.drainTo(batch, MAX_BATCH - 1);
+                        }
+                        for (String line : batch) {
+                            out.write(line);
+                            out.write('\n');
+                        }
+                        out.write("BATCH|" + batchSeq + "|" + TCP_server6.toHex(batchMac(linkKey, batchSeq, batch)) + "\n");
+                        out.flush(); // One write per batch
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Cluster link to " + host + ":" + port + " down: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+    }
+}
@@ -1,9 +1,15 @@
 package tcp_client6;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -14,11 +20,23 @@ public class TCP_client6_2 extends JFrame {
     private static final int SERVER_PORT = 5000;
     private static final String BACKUP_DIR = "client_backups/";
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final boolean DEFAULT_SECRET = System.getProperty("chat.secret") == null;
+    private static final byte[] SHARED_SECRET = System.getProperty("chat.secret", "secure-chat-shared-secret")
+            .getBytes(StandardCharsets.UTF_8);
+    // TLS settings (enable with -Dchat.tls=true)
+    private static final boolean TLS_ENABLED = Boolean.getBoolean("chat.tls");
+    private static final String TRUSTSTORE = System.getProperty("chat.truststore", "chat_test_keystore.p12");
+    private static final String TRUSTSTORE_PASSWORD = System.getProperty("chat.truststore.password", "changeit");
+    private static SSLContext sslContext; // Kept across reconnects so TLS sessions can be resumed
     
     private Socket socket;
     private BufferedReader in;
     private PrintWriter out;
     private PrintWriter backupWriter;
+    private Mac sessionMac; // HMAC keyed with the session key, null until the handshake completes
+    private long sentSeq; // Last sequence number signed for the server; guarded by this
+    private long receivedSeq; // Last sequence number verified from the server; guarded by this
     private String backupFile;
     // GUI Components
     private JTextArea chatArea;
@@ -33,6 +51,9 @@ public class TCP_client6_2 extends JFrame {
         setTitle("Secure TCP Chat Client - " + clientName);
         createGUI();
         setupBackupSystem();
+        if (DEFAULT_SECRET) {
+            appendToChat("[Warning]: -Dchat.secret is not set; the public default secret gives no real HMAC protection.");
+        }
     }  
     private void createGUI() {
         setTitle("Secure TCP Chat Client - " + clientName);
@@ -95,11 +116,13 @@ public class TCP_client6_2 extends JFrame {
         new Thread(() -> {
             try {
                 appendToChat("Connecting to server...");
-                socket = new Socket(SERVER_HOST, SERVER_PORT);
+                socket = TLS_ENABLED ? openTlsSocket() : new Socket(SERVER_HOST, SERVER_PORT);
                 in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
                 out = new PrintWriter(socket.getOutputStream(), true);          
                 // Send client name identification
-                out.println("!name|" + clientName + "|" + hash(clientName));          
+                String clientNonce = newNonce();
+                out.println("!name|" + clientName + "|" + hash(clientName) + "|" + clientNonce);
+                establishSession(clientName, clientNonce);
                 // Enable UI
                 SwingUtilities.invokeLater(() -> {
                     inputField.setEnabled(true);
@@ -121,8 +144,8 @@ public class TCP_client6_2 extends JFrame {
         String message = inputField.getText().trim();
         if (message.isEmpty()) return;
         inputField.setText("");     
-        // Hash and send
-        String hashed = hash(message);
+        // Sign and send
+        String hashed = sign(message);
          String toSend = message + "|" + hashed;     
         out.println(toSend);
         // Display locally with different color indicator
@@ -138,6 +161,12 @@ public class TCP_client6_2 extends JFrame {
         try {
             String serverResponse;
             while ((serverResponse = in.readLine()) != null) {
+                // Answer heartbeats directly, they are not shown in the chat
+                if (serverResponse.equals("PING")) {
+                    out.println("!pong");
+                    continue;
+                }
+                if (serverResponse.equals("PONG")) continue;
                 final String response = serverResponse;
                 SwingUtilities.invokeLater(() -> {
                     String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());    
@@ -157,8 +186,7 @@ public class TCP_client6_2 extends JFrame {
                         String message = parts[0];
                         String receivedHash = parts[1];   
                         // Verify message
-                        String calculatedHash = hash(message);
-                        if (calculatedHash.equals(receivedHash)) {
+                        if (verify(message, receivedHash)) {
                             // Color code different clients
                             if (message.contains("[Client1]:")) {
                                 appendToChat(timestamp + " [Client1]: " + 
@@ -279,6 +307,103 @@ public class TCP_client6_2 extends JFrame {
                                          JOptionPane.INFORMATION_MESSAGE);
         });
     }
+    private Socket openTlsSocket() throws IOException {
+        SSLSocket tlsSocket;
+        synchronized (TCP_client6_2.class) {
+            if (sslContext == null) {
+                try {
+                    KeyStore trustStore = KeyStore.getInstance("PKCS12");
+                    try (InputStream in = new FileInputStream(TRUSTSTORE)) {
+                        trustStore.load(in, TRUSTSTORE_PASSWORD.toCharArray());
+                    }
+                    TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                    tmf.init(trustStore);
+                    sslContext = SSLContext.getInstance("TLS");
+                    sslContext.init(null, tmf.getTrustManagers(), null);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("TLS setup failed: " + e.getMessage(), e);
+                }
+            }
+            tlsSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(SERVER_HOST, SERVER_PORT);
+        }
+        tlsSocket.setTcpNoDelay(true);
+        tlsSocket.startHandshake();
+        logToBackup("TLS session: " + tlsSocket.getSession().getProtocol() + " " + tlsSocket.getSession().getCipherSuite());
+        return tlsSocket;
+    }
+    // Reads the server's SESSION|nonce reply and derives the shared HMAC key
+    private void establishSession(String name, String clientNonce) throws IOException {
+        synchronized (this) {
+            sessionMac = null;
+            sentSeq = 0;
+            receivedSeq = 0;
+        }
+        String reply = in.readLine();
+        if (reply != null && reply.startsWith("SESSION|")) {
+            try {
+                Mac master = Mac.getInstance(HMAC_ALGORITHM);
+                master.init(new SecretKeySpec(SHARED_SECRET, HMAC_ALGORITHM));
+                byte[] key = master.doFinal((name + "|" + clientNonce + "|" + reply.substring(8))
+                        .getBytes(StandardCharsets.UTF_8));
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+                synchronized (this) {
+                    sessionMac = mac;
+                }
+                logToBackup("HMAC session established at " + new Date());
+            } catch (GeneralSecurityException e) {
+                socket.close();
+                throw new IOException("HMAC session unavailable: " + e.getMessage(), e);
+            }
+        } else {
+            // We asked for a session: never fall back to the plain hash (possible downgrade attack)
+            socket.close();
+            throw new IOException("Server did not establish an HMAC session - refusing to downgrade to SHA-256"
+                    + (reply != null && reply.startsWith("ERROR|") ? " (" + reply.substring(6) + ")" : ""));
+        }
+    }
+    // seq|HMAC(c2s|seq|message) with the session key when established, plain SHA-256 otherwise.
+    // The direction label and increasing sequence number stop lines being replayed or reflected.
+    private synchronized String sign(String message) {
+        if (sessionMac == null) {
+            return hash(message);
+        }
+        long seq = ++sentSeq;
+        return seq + "|" + sessionTag("c2s", seq, message);
+    }
+    // Checks a received tag; with a session it must be seq|HMAC(s2c|seq|message) with a new seq
+    private synchronized boolean verify(String message, String receivedTag) {
+        if (sessionMac == null) {
+            return hash(message).equals(receivedTag);
+        }
+        String[] parts = receivedTag.split("\\|", 2);
+        long seq;
+        try {
+            seq = Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (parts.length != 2 || seq <= receivedSeq || !sessionTag("s2c", seq, message).equals(parts[1])) {
+            return false;
+        }
+        receivedSeq = seq;
+        return true;
+    }
+    private String sessionTag(String direction, long seq, String message) {
+        return toHex(sessionMac.doFinal((direction + "|" + seq + "|" + message).getBytes(StandardCharsets.UTF_8)));
+    }
+    private static String newNonce() {
+        byte[] nonce = new byte[16];
+        new SecureRandom().nextBytes(nonce);
+        return toHex(nonce);
+    }
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0x0f, 16)).append(Character.forDigit(b & 0x0f, 16));
+        }
+        return sb.toString();
+    }
     // Static hash method 
     static String hash(String msg) {
         try {
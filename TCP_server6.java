@@ -1,7 +1,13 @@
 package tcp_server6;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -9,34 +15,114 @@ import java.util.concurrent.*;
 
 public class TCP_server6 {
     
-    private static final int PORT = 5000;
+    private static final int PORT = Integer.getInteger("chat.port", 5000);
     private static final String BACKUP_DIR = "backups/";
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
-    private static PrintWriter backupWriter;
+    private static ChatJournal journal;
+    // Journal segment limits: rotate on size or age, compress closed segments, then apply retention
+    private static final long SEGMENT_MAX_BYTES = Long.getLong("chat.journal.maxSegmentMB", 64) * 1024 * 1024;
+    private static final long SEGMENT_MAX_AGE_MS = Long.getLong("chat.journal.maxSegmentMinutes", 24 * 60) * 60 * 1000;
+    private static final long JOURNAL_MAX_BYTES = Long.getLong("chat.journal.maxTotalMB", 1024) * 1024 * 1024;
+    private static final long RETENTION_MS = Long.getLong("chat.journal.retentionDays", 30) * 24 * 60 * 60 * 1000;
     private static ExecutorService threadPool = Executors.newCachedThreadPool();
     private static List<ClientHandler> activeClients = Collections.synchronizedList(new ArrayList<>());
+    // Integrity settings
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final boolean DEFAULT_SECRET = System.getProperty("chat.secret") == null;
+    private static final byte[] SHARED_SECRET = System.getProperty("chat.secret", "secure-chat-shared-secret")
+            .getBytes(StandardCharsets.UTF_8);
+    // Refuse clients that do not negotiate an HMAC session (-Dchat.requireHmac=true)
+    private static final boolean REQUIRE_HMAC = Boolean.getBoolean("chat.requireHmac");
+    private static final int MAX_BATCH_SIZE = 256;
+    // Direction labels in session MACs, so a line signed for one direction is never valid in the other
+    private static final String UPSTREAM = "c2s";
+    private static final String UPSTREAM_BATCH = "c2s-batch";
+    private static final String DOWNSTREAM = "s2c";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // Reusable crypto instances, one per thread
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 algorithm not available", e);
+        }
+    });
+    private static final ThreadLocal<KeyedMac> MACS = ThreadLocal.withInitial(KeyedMac::new);
+    // TLS settings (enable with -Dchat.tls=true)
+    private static final boolean TLS_ENABLED = Boolean.getBoolean("chat.tls");
+    private static final String KEYSTORE = System.getProperty("chat.keystore", "chat_test_keystore.p12");
+    private static final String KEYSTORE_PASSWORD = System.getProperty("chat.keystore.password", "changeit");
+    private static SSLContext sslContext;
+    // Overload protection, adjustable at runtime from the server console (<= 0 disables a rate)
+    private static volatile int maxConnections = Integer.getInteger("chat.maxConnections", 1000);
+    private static volatile double acceptsPerSecond = Double.parseDouble(System.getProperty("chat.acceptRate", "100"));
+    private static volatile int acceptBurst = Integer.getInteger("chat.acceptBurst", 50);
+    private static volatile double messagesPerSecond = Double.parseDouble(System.getProperty("chat.msgRate", "20"));
+    private static volatile int messageBurst = Integer.getInteger("chat.msgBurst", 40);
+    private static final TokenBucket acceptLimiter = new TokenBucket();
+    // Heartbeat: PING after HEARTBEAT_MS of silence, evict after IDLE_TIMEOUT_MS
+    private static final long HEARTBEAT_MS = Long.getLong("chat.heartbeatSeconds", 30) * 1000;
+    private static final long IDLE_TIMEOUT_MS = Long.getLong("chat.idleTimeoutSeconds", 90) * 1000;
+    private static final TimingWheel idleWheel = new TimingWheel(500, 512, threadPool);
+    // Clustering (enable with -Dchat.clusterPort=<port> -Dchat.peers=host:port,...)
+    // Effective node ID, shared by the cluster link and the journal file prefix
+    private static final String NODE_ID = System.getProperty("chat.nodeId",
+            System.getProperty("chat.clusterPort") != null ? "node-" + PORT : null);
+    // Links between nodes use their own secret, which must never be given to chat clients
+    private static final String CLUSTER_SECRET = System.getProperty("chat.clusterSecret");
+    private static ClusterNode cluster;
 
     public static void main(String[] args) throws Exception {
         System.out.println("Secure Chat Server Starting...");
         System.out.println("Listening on port: " + PORT);
-        // Create backup directory
-        new File(BACKUP_DIR).mkdirs();
-        // Create timestamped backup file
-        String backupFile = BACKUP_DIR + "chat_" + DATE_FORMAT.format(new Date()) + ".txt";
-        backupWriter = new PrintWriter(new FileWriter(backupFile, true));
+        // Open the journal (creates the backup directory and a timestamped segment)
+        String prefix = "chat_" + (NODE_ID != null ? NODE_ID + "_" : ""); // Several nodes can share one directory
+        journal = new ChatJournal(new File(BACKUP_DIR), prefix, SEGMENT_MAX_BYTES, SEGMENT_MAX_AGE_MS,
+                JOURNAL_MAX_BYTES, RETENTION_MS);
         logToBackup("=== SERVER STARTED: " + new Date() + " ===");
-        System.out.println("Backup file: " + backupFile);
+        System.out.println("Backup file: " + journal.getActiveFile().getPath());
+        if (DEFAULT_SECRET) {
+            System.err.println("************************************************************");
+            System.err.println("WARNING: -Dchat.secret is not set. The built-in default secret");
+            System.err.println("is public, so HMAC session keys are NOT secure.");
+            System.err.println("************************************************************");
+            logToBackup("SECURITY WARNING: running with the public default chat.secret");
+        }
         // Load recovery if available
         if (args.length > 0 && args[0].equals("-recover")) {
             recoverPreviousConversations();
         }
-        ServerSocket serverSocket = new ServerSocket(PORT);
-        startBackupRotation();
+        ServerSocket serverSocket;
+        if (TLS_ENABLED) {
+            // Channel-backed sockets so each connection can be wrapped by an SSLEngine
+            sslContext = TlsChannel.createContext(KEYSTORE, KEYSTORE_PASSWORD.toCharArray());
+            serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(PORT)).socket();
+            System.out.println("TLS enabled with keystore: " + KEYSTORE);
+        } else {
+            serverSocket = new ServerSocket(PORT);
+        }
+        startAdminConsole();
+        startCluster();
         while (true) {
             try {
                 Socket clientSocket = serverSocket.accept();
-                ClientHandler clientHandler = new ClientHandler(clientSocket);
+                if (activeClients.size() >= maxConnections
+                        || !acceptLimiter.tryAcquire(acceptsPerSecond, acceptBurst)) {
+                    rejectConnection(clientSocket);
+                    continue;
+                }
+                TlsChannel tls = null;
+                if (sslContext != null) {
+                    // Handshake is deferred to the client's worker thread
+                    SSLEngine engine = sslContext.createSSLEngine(
+                            clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort());
+                    engine.setUseClientMode(false);
+                    clientSocket.setTcpNoDelay(true); // Handshake flights are many small records
+                    tls = new TlsChannel(clientSocket.getChannel(), engine);
+                }
+                ClientHandler clientHandler = new ClientHandler(clientSocket, tls);
                 activeClients.add(clientHandler);
+                clientHandler.scheduleIdleCheck(HEARTBEAT_MS);
                 threadPool.execute(clientHandler);
                 System.out.println("New client connected. Active clients: " + activeClients.size());
             } catch (IOException e) {
@@ -44,51 +130,95 @@ public class TCP_server6 {
             }
         }
     }
-    private static void logToBackup(String message) {
-        synchronized (backupWriter) {
-            backupWriter.println(message);
-            backupWriter.flush();
+    private static void startCluster() throws IOException {
+        Integer clusterPort = Integer.getInteger("chat.clusterPort");
+        if (clusterPort == null) return;
+        if (CLUSTER_SECRET == null || CLUSTER_SECRET.isEmpty()
+                || Arrays.equals(CLUSTER_SECRET.getBytes(StandardCharsets.UTF_8), SHARED_SECRET)) {
+            // Every client knows chat.secret, so a cluster keyed with it would accept any client as a node
+            throw new IllegalStateException("-Dchat.clusterPort requires -Dchat.clusterSecret, distinct from chat.secret");
         }
+        // Links use TLS too when the server runs with -Dchat.tls=true
+        cluster = new ClusterNode(NODE_ID, clusterPort, ClusterNode.parsePeers(System.getProperty("chat.peers")),
+                CLUSTER_SECRET.getBytes(StandardCharsets.UTF_8), sslContext, TCP_server6::deliverRemote);
+        cluster.start();
+        logToBackup("=== CLUSTER NODE " + NODE_ID + " JOINED ===");
     }
-    private static void startBackupRotation() {
-        Timer timer = new Timer(true);
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    String newBackupFile = BACKUP_DIR + "chat_" + DATE_FORMAT.format(new Date()) + ".txt";
-                    synchronized (backupWriter) {
-                        backupWriter.close();
-                        backupWriter = new PrintWriter(new FileWriter(newBackupFile, true));
-                        logToBackup("=== NEW DAILY BACKUP STARTED: " + new Date() + " ===");
-                        System.out.println("Rotated to new backup file: " + newBackupFile);
+    // A message relayed from another node: log it and fan it out to every local client
+    private static void deliverRemote(String originNode, String sender, String message) {
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        String logMessage = timestamp + " [" + sender + "@" + originNode + "]: " + message + " (relayed)";
+        System.out.println(logMessage);
+        logToBackup(logMessage);
+        broadcastMessage(message, null);
+    }
+    // Shed load before any per-client work; TLS peers are just closed to avoid handshake cost
+    private static void rejectConnection(Socket socket) {
+        try {
+            if (sslContext == null) {
+                socket.getOutputStream().write("ERROR|Server busy - try again later\n".getBytes(StandardCharsets.UTF_8));
+            }
+            socket.close();
+        } catch (IOException e) {
+            // Client already gone
+        }
+        System.err.println("Rejected connection from " + socket.getInetAddress() + " (server busy)");
+    }
+    // Reads "limits" and "set <name> <value>" commands from standard input
+    private static void startAdminConsole() {
+        Thread console = new Thread(() -> {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.trim().split("\\s+");
+                    if (parts[0].equals("limits")) {
+                        printLimits();
+                    } else if (parts[0].equals("set") && parts.length == 3) {
+                        try {
+                            applyLimit(parts[1], parts[2]);
+                            printLimits();
+                        } catch (IllegalArgumentException e) {
+                            System.err.println("Invalid limit: " + e.getMessage());
+                        }
+                    } else if (!parts[0].isEmpty()) {
+                        System.out.println("Commands: limits | set <maxConnections|acceptRate|acceptBurst|msgRate|msgBurst> <value>");
                     }
-                } catch (IOException e) {
-                    System.err.println("Error rotating backup: " + e.getMessage());
                 }
+            } catch (IOException e) {
+                System.err.println("Admin console stopped: " + e.getMessage());
             }
-        }, getNextMidnight(), 24 * 60 * 60 * 1000); // Daily at midnight
+        }, "admin-console");
+        console.setDaemon(true);
+        console.start();
+    }
+    private static void applyLimit(String name, String value) {
+        switch (name) {
+            case "maxConnections": maxConnections = Integer.parseInt(value); break;
+            case "acceptRate": acceptsPerSecond = Double.parseDouble(value); break;
+            case "acceptBurst": acceptBurst = Integer.parseInt(value); break;
+            case "msgRate": messagesPerSecond = Double.parseDouble(value); break;
+            case "msgBurst": messageBurst = Integer.parseInt(value); break;
+            default: throw new IllegalArgumentException("unknown limit " + name);
+        }
+        logToBackup("LIMIT CHANGED: " + name + "=" + value);
     }
-    private static long getNextMidnight() {
-        Calendar c = Calendar.getInstance();
-        c.add(Calendar.DAY_OF_MONTH, 1);
-        c.set(Calendar.HOUR_OF_DAY, 0);
-        c.set(Calendar.MINUTE, 0);
-        c.set(Calendar.SECOND, 0);
-        c.set(Calendar.MILLISECOND, 0);
-        return c.getTimeInMillis() - System.currentTimeMillis();
+    private static void printLimits() {
+        System.out.println("Limits: maxConnections=" + maxConnections + " acceptRate=" + acceptsPerSecond
+                + "/s acceptBurst=" + acceptBurst + " msgRate=" + messagesPerSecond + "/s msgBurst=" + messageBurst);
+    }
+    private static void logToBackup(String message) {
+        journal.append(message);
     }
     private static void recoverPreviousConversations() {
-        File backupDir = new File(BACKUP_DIR);
-        File[] backupFiles = backupDir.listFiles((dir, name) -> name.startsWith("chat_") && name.endsWith(".txt"));
-        if (backupFiles != null && backupFiles.length > 0) {
+        List<File> backupFiles = journal.listSegments(); // Plain and compressed segments
+        if (!backupFiles.isEmpty()) {
             System.out.println("=== RECOVERY MODE ===");
-            System.out.println("Found " + backupFiles.length + " backup file(s):");
+            System.out.println("Found " + backupFiles.size() + " backup file(s):");
             for (File file : backupFiles) {
                 System.out.println("\nRecovering from: " + file.getName());
-                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
+                try {
+                    for (String line : ChatJournal.readLines(file, 0, Integer.MAX_VALUE)) {
                         System.out.println("  " + line);
                     }
                 } catch (IOException e) {
@@ -99,42 +229,77 @@ public class TCP_server6 {
         }
     } 
     private static void broadcastMessage(String message, ClientHandler sender) {
+        // Snapshot the list so signing and writing happen outside its lock
+        ClientHandler[] recipients;
         synchronized (activeClients) {
-            for (ClientHandler client : activeClients) {
-                if (client != sender && client.isConnected()) {
-                    client.sendMessage(message);
-                }
+            recipients = activeClients.toArray(new ClientHandler[0]);
+        }
+        String plainHash = null;
+        for (ClientHandler client : recipients) {
+            if (client != sender && client.isConnected()) {
+                // HMAC with the recipient's own Mac, or one shared plain hash for legacy clients
+                if (client.sessionKey == null && plainHash == null) plainHash = hash(message);
+                client.sendSigned(message, plainHash);
             }
         }
     } 
     // Inner class for handling individual clients
     static class ClientHandler implements Runnable {
         private Socket clientSocket;
+        private TlsChannel tls; // Null for plaintext connections
         private BufferedReader in;
         private PrintWriter out;
         private String clientId;
-        private boolean connected = true;   
-        public ClientHandler(Socket socket) {
+        private volatile boolean connected = true; // Also cleared by evict() on a pool thread
+        private volatile SecretKeySpec sessionKey; // Set when the handshake carries a client nonce
+        private Mac outboundMac; // Keyed once with sessionKey for signing broadcasts; guarded by this
+        private long outboundSeq = 0; // Last sequence number sent to the client; guarded by this
+        private long inboundSeq = 0; // Last sequence number accepted from the client
+        private final TokenBucket messageLimiter = new TokenBucket();
+        private long droppedMessages = 0;
+        private volatile long lastActivity = System.currentTimeMillis();
+        public ClientHandler(Socket socket, TlsChannel tls) {
             this.clientSocket = socket;
+            this.tls = tls;
             this.clientId = "Client_" + socket.getPort(); // Default ID
         }
         @Override
         public void run() {
             try {
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
+                if (tls != null) {
+                    tls.handshake();
+                    in = new BufferedReader(new InputStreamReader(tls.getInputStream()));
+                    out = new PrintWriter(tls.getOutputStream(), true);
+                } else {
+                    in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                    out = new PrintWriter(clientSocket.getOutputStream(), true);
+                }
                 String firstInput = in.readLine();
+                lastActivity = System.currentTimeMillis();
                 if (firstInput != null && firstInput.startsWith("!name|")) {
-                    String[] nameParts = firstInput.split("\\|", 3);
-                    if (nameParts.length == 3) {
+                    // Format: !name|name|hash or !name|name|hash|clientNonce
+                    String[] nameParts = firstInput.split("\\|", 4);
+                    if (nameParts.length >= 3) {
                         // Verify name hash
                         if (hash(nameParts[1]).equals(nameParts[2])) {
                             clientId = nameParts[1];
                             System.out.println("Client identified as: " + clientId);
+                            if (nameParts.length == 4 && !nameParts[3].isEmpty()) {
+                                // Establish HMAC session key from both nonces
+                                String serverNonce = newNonce();
+                                SecretKeySpec key = deriveSessionKey(clientId, nameParts[3], serverNonce);
+                                synchronized (this) {
+                                    outboundMac = new KeyedMac().forKey(key);
+                                }
+                                sessionKey = key;
+                                out.println("SESSION|" + serverNonce);
+                            }
                         }
                     }
+                    if (!allowWithoutSession()) return;
                     out.println("Welcome to Secure Chat Server! Your ID: " + clientId);
                 } else {
+                    if (!allowWithoutSession()) return;
                     out.println("Welcome to Secure Chat Server! Your ID: " + clientId);
                     // Handle the first message I already read
                     if (firstInput != null) {
@@ -143,40 +308,69 @@ public class TCP_server6 {
                 }
                 String inputLine;
                 while ((inputLine = in.readLine()) != null && connected) {
+                    lastActivity = System.currentTimeMillis();
                     processMessage(inputLine);
                 } 
             } catch (IOException e) {
-                System.err.println("Error with client " + clientId + ": " + e.getMessage());
+                if (connected) { // Otherwise the socket was closed by evict()
+                    System.err.println("Error with client " + clientId + ": " + e.getMessage());
+                }
             } finally {
                 disconnect();
             }
         } 
+        // Clients without a session key fall back to the unkeyed SHA-256 check, never silently
+        private boolean allowWithoutSession() {
+            if (sessionKey != null) return true;
+            if (REQUIRE_HMAC) {
+                out.println("ERROR|HMAC session required - reconnect with a client nonce");
+                logToBackup("SECURITY ALERT: " + clientId + " refused, no HMAC session");
+                return false;
+            }
+            System.err.println("WARNING: " + clientId + " has no HMAC session, using unkeyed SHA-256 integrity");
+            logToBackup("SECURITY WARNING: " + clientId + " connected without an HMAC session");
+            return true;
+        }
         // Helper method to process messages
         private void processMessage(String inputLine) throws IOException {
             if (inputLine.equalsIgnoreCase("!exit")) {
                 connected = false;
                 return;
             }
-            // Verify message format: message|hash
+            if (inputLine.startsWith("!batch|")) {
+                processBatch(inputLine); // Charges its own tokens
+                return;
+            }
+            // Rate limit before verification so floods cost no crypto or fan-out.
+            // Heartbeats are charged too, since every line that gets a reply costs the server a write.
+            if (!allowMessages(1)) {
+                return;
+            }
+            // Heartbeat traffic only refreshes lastActivity
+            if (inputLine.equals("!ping")) {
+                out.println("PONG");
+                return;
+            }
+            if (inputLine.equals("!pong")) {
+                return;
+            }
+            // Verify message format: message|hash, or message|seq|hmac with a session key
             String[] parts = inputLine.split("\\|", 2);
             if (parts.length == 2) {
                 String message = parts[0];
                 String receivedHash = parts[1];
-                // Verify integrity
-                String calculatedHash = hash(message);
-                if (calculatedHash.equals(receivedHash)) {
+                // Verify integrity: sequenced HMAC when a session key exists, plain hash otherwise
+                boolean verified = sessionKey != null ? verifySequenced(message, receivedHash)
+                        : tagsMatch(hash(message), receivedHash);
+                if (verified) {
                     // Message is valid
                     String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
-                    String logMessage = timestamp + " [" + clientId + "]: " + message + " ✓";
-                    System.out.println(logMessage);
-                    logToBackup(logMessage);
+                    deliver(message, timestamp);
                     // Echo back with verification
                     out.println("ACK|" + timestamp + "|Message received and verified");
-                    // Broadcast to other clients
-                    broadcastMessage(message + "|" + receivedHash, this);
                 } else {
                     // Hash mismatch - possible tampering
-                    String errorMsg = "ERROR|Hash verification failed - possible tampering";
+                    String errorMsg = "ERROR|Hash verification failed - possible tampering or replay";
                     System.err.println("Integrity check failed from " + clientId);
                     logToBackup("SECURITY ALERT: Hash mismatch from " + clientId);
                     out.println(errorMsg);
@@ -186,14 +380,155 @@ public class TCP_server6 {
                 out.println("ERROR|Invalid message format");
             }
         } 
+        // Accepts "seq|hmac" where hmac covers c2s|seq|message and seq is above every accepted one,
+        // so neither replayed client lines nor reflected server broadcasts verify
+        private boolean verifySequenced(String message, String seqAndTag) {
+            String[] parts = seqAndTag.split("\\|", 2);
+            long seq = parts.length == 2 ? parseSeq(parts[0]) : -1;
+            if (seq <= inboundSeq || !tagsMatch(hmac(sessionKey, macInput(UPSTREAM, seq, message)), parts[1])) {
+                return false;
+            }
+            inboundSeq = seq;
+            return true;
+        }
+        // Batch format: !batch|count|seq|mac followed by count message lines.
+        // One rolling HMAC covers c2s-batch|seq| and every line (each terminated by '\n');
+        // seq shares the counter of single messages.
+        private void processBatch(String header) throws IOException {
+            String[] parts = header.split("\\|", 4);
+            int count;
+            try {
+                count = parts.length == 4 ? Integer.parseInt(parts[1]) : -1;
+            } catch (NumberFormatException e) {
+                count = -1;
+            }
+            if (count <= 0 || count > MAX_BATCH_SIZE) {
+                if (allowMessages(1)) {
+                    out.println("ERROR|Invalid batch header");
+                }
+                return;
+            }
+            // Always consume the announced lines so the stream stays in sync
+            String[] messages = new String[count];
+            for (int i = 0; i < count; i++) {
+                messages[i] = in.readLine();
+                if (messages[i] == null) {
+                    connected = false;
+                    return;
+                }
+            }
+            // The bucket can never hold more than messageBurst tokens, so larger batches could never pass
+            int burst = messageBurst;
+            if (messagesPerSecond > 0 && count > burst) {
+                if (allowMessages(1)) {
+                    out.println("ERROR|Batch of " + count + " exceeds the burst limit of " + burst + " messages");
+                }
+                return;
+            }
+            if (!allowMessages(count)) {
+                return;
+            }
+            if (sessionKey == null) {
+                out.println("ERROR|Batch verification requires a session key");
+                return;
+            }
+            // Same shape as single messages: no '|' (recipients split on it) and no '!' commands
+            for (String message : messages) {
+                if (message.indexOf('|') >= 0 || message.startsWith("!")) {
+                    out.println("ERROR|Invalid batch line - '|' and leading '!' are not allowed");
+                    return;
+                }
+            }
+            long seq = parseSeq(parts[2]);
+            Mac mac = MACS.get().forKey(sessionKey);
+            mac.update(macInput(UPSTREAM_BATCH, seq, "").getBytes(StandardCharsets.UTF_8));
+            for (String message : messages) {
+                mac.update(message.getBytes(StandardCharsets.UTF_8));
+                mac.update((byte) '\n');
+            }
+            if (seq > inboundSeq && tagsMatch(toHex(mac.doFinal()), parts[3])) {
+                inboundSeq = seq;
+                String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+                for (String message : messages) {
+                    deliver(message, timestamp);
+                }
+                out.println("ACK|" + timestamp + "|Batch of " + count + " messages received and verified");
+            } else {
+                System.err.println("Batch integrity check failed from " + clientId);
+                logToBackup("SECURITY ALERT: Batch MAC mismatch from " + clientId);
+                out.println("ERROR|Batch verification failed - possible tampering or replay");
+            }
+        }
+        // Per-client token bucket; over-limit messages are dropped with an explicit error
+        private boolean allowMessages(int count) {
+            if (messageLimiter.tryAcquire(count, messagesPerSecond, messageBurst)) {
+                return true;
+            }
+            if (droppedMessages++ % 100 == 0) {
+                System.err.println("Rate limit exceeded by " + clientId + " (" + droppedMessages + " dropped)");
+                logToBackup("RATE LIMIT: " + clientId + " exceeded " + messagesPerSecond + " msg/s");
+            }
+            out.println("ERROR|Rate limit exceeded - message dropped");
+            return false;
+        }
+        // Log a verified message and broadcast it to the other clients
+        private void deliver(String message, String timestamp) {
+            String logMessage = timestamp + " [" + clientId + "]: " + message + " ✓";
+            System.out.println(logMessage);
+            logToBackup(logMessage);
+            broadcastMessage(message, this);
+            if (cluster != null) {
+                cluster.publish(clientId, message);
+            }
+        }
         public void sendMessage(String message) {
             if (out != null) {
                 out.println(message);
             }
         }
+        // Signs with this client's Mac as message|seq|hmac(s2c|seq|message). The lock serialises use
+        // of the Mac across broadcasting threads and keeps lines in sequence order on the wire.
+        synchronized void sendSigned(String message, String plainHash) {
+            if (outboundMac != null) {
+                long seq = ++outboundSeq;
+                byte[] tag = outboundMac.doFinal(macInput(DOWNSTREAM, seq, message).getBytes(StandardCharsets.UTF_8));
+                sendMessage(message + "|" + seq + "|" + toHex(tag));
+            } else {
+                sendMessage(message + "|" + (plainHash != null ? plainHash : hash(message)));
+            }
+        }
         public boolean isConnected() {
             return connected;
         }
+        void scheduleIdleCheck(long delayMillis) {
+            idleWheel.schedule(this::checkIdle, delayMillis);
+        }
+        // Runs on the pool when the client's wheel timeout fires
+        private void checkIdle() {
+            if (!connected) return;
+            long idle = System.currentTimeMillis() - lastActivity;
+            if (idle >= IDLE_TIMEOUT_MS) {
+                evict(idle);
+            } else if (idle >= HEARTBEAT_MS) {
+                sendMessage("PING");
+                scheduleIdleCheck(IDLE_TIMEOUT_MS - idle);
+            } else {
+                scheduleIdleCheck(HEARTBEAT_MS - idle);
+            }
+        }
+        // Drop a silent peer; closing the socket makes the reader thread run disconnect()
+        private void evict(long idle) {
+            connected = false;
+            activeClients.remove(this);
+            System.out.println("Evicting idle client " + clientId + " (" + idle / 1000 + "s without traffic)");
+            logToBackup(clientId + " evicted after " + idle / 1000 + "s idle");
+            try {
+                // Close the socket directly: TlsChannel.close() may wait behind a blocked handshake or write
+                clientSocket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing idle client: " + e.getMessage());
+            }
+        }
         private void disconnect() {
             connected = false;
             activeClients.remove(this);
@@ -210,16 +545,80 @@ public class TCP_server6 {
     }
     static String hash(String msg) {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] hash = md.digest(msg.getBytes());
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hash) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
+            return toHex(DIGESTS.get().digest(msg.getBytes()));
+        } catch (IllegalStateException e) {
             System.err.println("SHA-256 algorithm not available");
             return "";
         }
     }
+    // What a session MAC covers: direction label, sequence number and message
+    static String macInput(String direction, long seq, String message) {
+        return direction + "|" + seq + "|" + message;
+    }
+    // Parsed sequence number, or -1 when malformed (never above an accepted one)
+    static long parseSeq(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    static String hmac(SecretKeySpec key, String msg) {
+        return toHex(MACS.get().forKey(key).doFinal(msg.getBytes(StandardCharsets.UTF_8)));
+    }
+    // Session key = HMAC(shared secret, name|clientNonce|serverNonce)
+    static SecretKeySpec deriveSessionKey(String name, String clientNonce, String serverNonce) {
+        return deriveKey(new SecretKeySpec(SHARED_SECRET, HMAC_ALGORITHM), name + "|" + clientNonce + "|" + serverNonce);
+    }
+    static SecretKeySpec deriveKey(SecretKeySpec master, String context) {
+        byte[] material = MACS.get().forKey(master).doFinal(context.getBytes(StandardCharsets.UTF_8));
+        return new SecretKeySpec(material, HMAC_ALGORITHM);
+    }
+    // The calling thread's Mac, keyed with 'key'
+    static Mac macFor(SecretKeySpec key) {
+        return MACS.get().forKey(key);
+    }
+    static String newNonce() {
+        byte[] nonce = new byte[16];
+        RANDOM.nextBytes(nonce);
+        return toHex(nonce);
+    }
+    // Constant-time comparison of hex tags
+    static boolean tagsMatch(String expected, String received) {
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII),
+                received.getBytes(StandardCharsets.US_ASCII));
+    }
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+    // Per-thread Mac that is only re-initialised when the key changes
+    static class KeyedMac {
+        private final Mac mac;
+        private Key currentKey;
+        KeyedMac() {
+            try {
+                mac = Mac.getInstance(HMAC_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(HMAC_ALGORITHM + " algorithm not available", e);
+            }
+        }
+        Mac forKey(Key key) {
+            if (key != currentKey) {
+                try {
+                    mac.init(key);
+                } catch (InvalidKeyException e) {
+                    throw new IllegalArgumentException("Invalid HMAC key", e);
+                }
+                currentKey = key;
+            } else {
+                mac.reset();
+            }
+            return mac;
+        }
+    }
 }
\ No newline at end of file
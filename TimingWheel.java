@@ -0,0 +1,101 @@
+package tcp_server6;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+// Hashed timing wheel for large numbers of coarse timeouts (e.g. idle connections).
+// Scheduling is a lock-free enqueue; each tick only touches one bucket, so the cost per
+// tick does not grow with the number of pending timeouts. Deadlines further away than one
+// rotation wait in their bucket for the remaining number of rounds.
+// Expired tasks are handed to an executor so a slow task never delays the wheel.
+public class TimingWheel {
+
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadline; // Nanos
+        private long rounds;
+        private volatile boolean cancelled = false;
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] buckets; // Only touched by the wheel thread
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Executor executor;
+    private final long startTime = System.nanoTime();
+    private long tick = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, int wheelSize, Executor executor) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of two: " + wheelSize);
+        }
+        this.tickNanos = tickMillis * 1_000_000L;
+        this.buckets = new ArrayDeque[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.mask = wheelSize - 1;
+        this.executor = executor;
+        Thread worker = new Thread(this::run, "timing-wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + delayMillis * 1_000_000L);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long sleepNanos = startTime + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    Thread.sleep(sleepNanos / 1_000_000L, (int) (sleepNanos % 1_000_000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            transferPending();
+            expireBucket(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) continue;
+            long target = Math.max((timeout.deadline - startTime) / tickNanos, tick);
+            timeout.rounds = (target - tick) / buckets.length;
+            buckets[(int) (target & mask)].add(timeout);
+        }
+    }
+
+    private void expireBucket(ArrayDeque<Timeout> bucket) {
+        for (int i = bucket.size(); i > 0; i--) {
+            Timeout timeout = bucket.poll();
+            if (timeout.cancelled) continue;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                bucket.add(timeout);
+            } else {
+                try {
+                    executor.execute(timeout.task);
+                } catch (RuntimeException e) {
+                    System.err.println("Timeout task rejected: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package tcp_server6;
+
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.*;
+
+// Compares handshake rate and bulk throughput of the TLS transport against plaintext
+// on loopback. Run from the project directory so the test keystore is found:
+//   java -cp <classes> tcp_server6.TlsBenchmark [handshakes] [megabytes]
+public class TlsBenchmark {
+
+    private static final String KEYSTORE = System.getProperty("chat.keystore", "chat_test_keystore.p12");
+    private static final char[] PASSWORD = System.getProperty("chat.keystore.password", "changeit").toCharArray();
+    private static final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static void main(String[] args) throws Exception {
+        int handshakes = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        SSLContext serverContext = TlsChannel.createContext(KEYSTORE, PASSWORD);
+        ServerSocketChannel plainServer = startServer(null);
+        ServerSocketChannel tlsServer = startServer(serverContext);
+        int plainPort = plainServer.socket().getLocalPort();
+        int tlsPort = tlsServer.socket().getLocalPort();
+
+        System.out.println("=== CONNECTION RATE (" + handshakes + " connections) ===");
+        report("Plaintext connect", handshakes, timeConnections(handshakes, plainPort, null, false));
+        report("TLS full handshake", handshakes, timeConnections(handshakes, tlsPort, serverContext, true));
+        report("TLS resumed handshake", handshakes, timeConnections(handshakes, tlsPort, serverContext, false));
+
+        System.out.println("=== THROUGHPUT (" + megabytes + " MB) ===");
+        reportThroughput("Plaintext", megabytes, timeTransfer(megabytes, plainPort, null));
+        reportThroughput("TLS", megabytes, timeTransfer(megabytes, tlsPort, serverContext));
+        plainServer.close();
+        tlsServer.close();
+    }
+
+    // Sends one byte after the handshake, then drains the connection until EOF and answers with one byte
+    private static ServerSocketChannel startServer(SSLContext context) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        workers.execute(() -> {
+            while (server.isOpen()) {
+                try {
+                    SocketChannel channel = server.accept();
+                    channel.socket().setTcpNoDelay(true);
+                    workers.execute(() -> serve(channel, context));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        return server;
+    }
+
+    private static void serve(SocketChannel channel, SSLContext context) {
+        try {
+            InputStream in;
+            OutputStream out;
+            if (context != null) {
+                SSLEngine engine = context.createSSLEngine();
+                engine.setUseClientMode(false);
+                TlsChannel tls = new TlsChannel(channel, engine);
+                tls.handshake();
+                in = tls.getInputStream();
+                out = tls.getOutputStream();
+            } else {
+                in = channel.socket().getInputStream();
+                out = channel.socket().getOutputStream();
+            }
+            out.write(1); // Lets TLS 1.3 clients receive their session ticket
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+                if (buffer[n - 1] == '\n') {
+                    out.write(1); // End-of-transfer marker
+                }
+            }
+            out.close();
+        } catch (IOException e) {
+            // Client went away
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // A fresh client context per connection forces full handshakes; a shared one allows resumption
+    private static long timeConnections(int count, int port, SSLContext serverContext, boolean fullHandshake) throws Exception {
+        SSLContext[] contexts = new SSLContext[count];
+        if (serverContext != null) {
+            SSLContext shared = clientContext();
+            connectOnce(port, shared); // Warm up the session cache
+            for (int i = 0; i < count; i++) {
+                contexts[i] = fullHandshake ? clientContext() : shared;
+            }
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            connectOnce(port, contexts[i]);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void connectOnce(int port, SSLContext context) throws IOException {
+        try (Socket socket = openSocket(port, context)) {
+            socket.getInputStream().read();
+        }
+    }
+
+    private static long timeTransfer(int megabytes, int port, SSLContext serverContext) throws Exception {
+        try (Socket socket = openSocket(port, serverContext != null ? clientContext() : null)) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            in.read();
+            byte[] chunk = new byte[16 * 1024];
+            long total = (long) megabytes * 1024 * 1024;
+            long start = System.nanoTime();
+            for (long sent = 0; sent < total; sent += chunk.length) {
+                if (sent + chunk.length >= total) {
+                    chunk[chunk.length - 1] = '\n';
+                }
+                out.write(chunk);
+            }
+            out.flush();
+            in.read(); // Wait until the server has read everything
+            return System.nanoTime() - start;
+        }
+    }
+
+    private static Socket openSocket(int port, SSLContext context) throws IOException {
+        if (context == null) {
+            Socket socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port);
+        socket.setTcpNoDelay(true);
+        socket.startHandshake();
+        return socket;
+    }
+
+    private static SSLContext clientContext() throws Exception {
+        return TlsChannel.createContext(KEYSTORE, PASSWORD);
+    }
+
+    private static void report(String label, int count, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-24s %8.0f conn/s  (%.3f ms each)%n", label, count / seconds, nanos / 1e6 / count);
+    }
+
+    private static void reportThroughput(String label, int megabytes, long nanos) {
+        System.out.printf("%-24s %8.1f MB/s%n", label, megabytes / (nanos / 1e9));
+    }
+}
@@ -0,0 +1,253 @@
+package tcp_server6;
+
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.*;
+
+// TLS on top of a SocketChannel, driven by an SSLEngine.
+// The engine only works on buffers, so the accept loop never blocks on a handshake:
+// the handshake runs in the thread that serves the connection.
+// The channel must be in blocking mode: unwrap() and wrap() loop on channel reads and writes,
+// which would spin on a non-blocking channel, so this class cannot be driven by a selector.
+// Reads and writes may run concurrently from different threads.
+public class TlsChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    private ByteBuffer netIn;  // Encrypted bytes from the peer (write mode)
+    private ByteBuffer appIn;  // Decrypted bytes not yet consumed (write mode)
+    private ByteBuffer netOut; // Encrypted bytes to the peer
+    private boolean closed = false;
+
+    public TlsChannel(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        this.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+    }
+
+    // Builds a context whose key and trust material both come from one keystore.
+    // Sessions are cached so that reconnecting peers can resume instead of doing a full handshake.
+    public static SSLContext createContext(String keystorePath, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keystorePath)) {
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, password);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        context.getServerSessionContext().setSessionCacheSize(10_000);
+        context.getServerSessionContext().setSessionTimeout(24 * 60 * 60); // Seconds
+        return context;
+    }
+
+    // Only the read lock is held for the whole handshake; the write lock is taken per record,
+    // so close() never waits behind a peer that stalls the handshake
+    public void handshake() throws IOException {
+        synchronized (readLock) {
+            engine.beginHandshake();
+            HandshakeStatus status = engine.getHandshakeStatus();
+            while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+                switch (status) {
+                    case NEED_UNWRAP:
+                    case NEED_UNWRAP_AGAIN:
+                        SSLEngineResult result = unwrap();
+                        if (result == null || result.getStatus() == Status.CLOSED) {
+                            throw new EOFException("Connection closed during TLS handshake");
+                        }
+                        status = result.getHandshakeStatus();
+                        break;
+                    case NEED_WRAP:
+                        synchronized (writeLock) {
+                            status = wrap(EMPTY).getHandshakeStatus();
+                        }
+                        break;
+                    case NEED_TASK:
+                        runDelegatedTasks();
+                        status = engine.getHandshakeStatus();
+                        break;
+                    default:
+                        throw new SSLException("Unexpected handshake status: " + status);
+                }
+            }
+        }
+    }
+
+    public SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        synchronized (readLock) {
+            while (appIn.position() == 0) {
+                SSLEngineResult result = unwrap();
+                if (result == null || result.getStatus() == Status.CLOSED) {
+                    return -1;
+                }
+                handlePostHandshake(result.getHandshakeStatus());
+            }
+            appIn.flip();
+            int n = Math.min(len, appIn.remaining());
+            appIn.get(b, off, n);
+            appIn.compact();
+            return n;
+        }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        synchronized (writeLock) {
+            ByteBuffer src = ByteBuffer.wrap(b, off, len);
+            while (src.hasRemaining()) {
+                if (wrap(src).getStatus() == Status.CLOSED) {
+                    throw new IOException("TLS session closed");
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (closed) return;
+            closed = true;
+            try {
+                engine.closeOutbound();
+                while (!engine.isOutboundDone() && channel.isOpen()) {
+                    wrap(EMPTY); // Send close_notify
+                }
+            } catch (IOException e) {
+                // Peer already gone; nothing left to notify
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = read(one, 0, 1);
+                return n < 0 ? -1 : one[0] & 0xff;
+            }
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : TlsChannel.this.read(b, off, len);
+            }
+            @Override
+            public void close() throws IOException {
+                TlsChannel.this.close();
+            }
+        };
+    }
+
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                TlsChannel.this.write(b, off, len);
+            }
+            @Override
+            public void close() throws IOException {
+                TlsChannel.this.close();
+            }
+        };
+    }
+
+    // Unwraps one record into appIn, reading from the channel as needed. Returns null on EOF.
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            switch (result.getStatus()) {
+                case OK:
+                case CLOSED:
+                    return result;
+                case BUFFER_OVERFLOW:
+                    appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    if (channel.read(netIn) < 0) {
+                        try {
+                            engine.closeInbound();
+                        } catch (SSLException e) {
+                            // Truncated stream without close_notify
+                        }
+                        return null;
+                    }
+                    break;
+            }
+        }
+    }
+
+    // Wraps src into one record and writes it out
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(src, netOut);
+            if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+                netOut = ByteBuffer.allocate(Math.max(netOut.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                continue;
+            }
+            netOut.flip();
+            while (netOut.hasRemaining()) {
+                channel.write(netOut);
+            }
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+            return result;
+        }
+    }
+
+    // TLS 1.3 may exchange session tickets and key updates after the handshake
+    private void handlePostHandshake(HandshakeStatus status) throws IOException {
+        while (true) {
+            if (status == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                status = engine.getHandshakeStatus();
+            } else if (status == HandshakeStatus.NEED_WRAP) {
+                synchronized (writeLock) {
+                    status = wrap(EMPTY).getHandshakeStatus();
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    // Delegated tasks are short CPU work (certificate checks, key agreement); run them inline
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minCapacity) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minCapacity));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
@@ -0,0 +1,36 @@
+package tcp_server6;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lock-free token bucket, implemented as a virtual-scheduling (GCRA) limiter.
+// The whole state is one timestamp: the time at which the bucket would be full again.
+// Rate and burst are passed on every call so limits can be changed at runtime.
+public class TokenBucket {
+
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    // Takes 'tokens' tokens if available. A rate <= 0 means unlimited.
+    public boolean tryAcquire(int tokens, double perSecond, int burst) {
+        if (perSecond <= 0) {
+            return true;
+        }
+        long interval = (long) (1_000_000_000L / perSecond); // Nanos per token
+        long capacity = interval * Math.max(burst, 1);
+        long cost = interval * tokens;
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            if (next - now > capacity) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean tryAcquire(double perSecond, int burst) {
+        return tryAcquire(1, perSecond, burst);
+    }
+}